@@ -0,0 +1,132 @@
+package own.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several named cluster/bucket targets (e.g. XDCR replicas in different sites) that reads can be routed to.
+ * <p>
+ * When no target is configured, the single cluster/bucket of {@link MyDatabaseConfig} is used.
+ * Writes always go to the primary target.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "couchbase.routing")
+public class MyRoutingConfig {
+
+    private List<Target> targets = new ArrayList<>();
+
+    // name of the target writes go to. Defaults to the first target.
+    private String primary;
+
+    // weight of the latest latency in the moving average of a target's latency
+    private double ewmaAlpha = 0.2;
+
+    // consecutive failures after which a target is skipped for retryAfterMillis
+    private int failureThreshold = 3;
+
+    private long retryAfterMillis = 10000;
+
+    // after a write, reads of the same session go to the primary for this long. 0 turns read-your-writes off
+    private long readYourWritesMillis = 0;
+
+    // a target that isn't the fastest one gets a read of each kind at least this often, so that its latency stays current
+    private long probeIntervalMillis = 5000;
+
+    public List<Target> getTargets() {
+        return targets;
+    }
+
+    public void setTargets(List<Target> targets) {
+        this.targets = targets;
+    }
+
+    public String getPrimary() {
+        return primary;
+    }
+
+    public void setPrimary(String primary) {
+        this.primary = primary;
+    }
+
+    public double getEwmaAlpha() {
+        return ewmaAlpha;
+    }
+
+    public void setEwmaAlpha(double ewmaAlpha) {
+        this.ewmaAlpha = ewmaAlpha;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    public void setRetryAfterMillis(long retryAfterMillis) {
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getReadYourWritesMillis() {
+        return readYourWritesMillis;
+    }
+
+    public void setReadYourWritesMillis(long readYourWritesMillis) {
+        this.readYourWritesMillis = readYourWritesMillis;
+    }
+
+    public long getProbeIntervalMillis() {
+        return probeIntervalMillis;
+    }
+
+    public void setProbeIntervalMillis(long probeIntervalMillis) {
+        this.probeIntervalMillis = probeIntervalMillis;
+    }
+
+    public static class Target {
+        private String name;
+        private List<String> nodes = new ArrayList<>();
+        private String bucket;
+        private String password;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public List<String> getNodes() {
+            return nodes;
+        }
+
+        public void setNodes(List<String> nodes) {
+            this.nodes = nodes;
+        }
+
+        public String getBucket() {
+            return bucket;
+        }
+
+        public void setBucket(String bucket) {
+            this.bucket = bucket;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public void setPassword(String password) {
+            this.password = password;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package own.controller;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+import own.service.MyCouchbaseService;
+import own.service.MyQueryStatsService;
+
+/**
+ * Administration endpoints.
+ */
+@RestController
+@RequestMapping("/admin")
+public class MyAdminController {
+
+    private final MyQueryStatsService queryStatsService;
+    private final MyCouchbaseService couchbaseService;
+
+    @Autowired
+    public MyAdminController(MyQueryStatsService queryStatsService, MyCouchbaseService couchbaseService) {
+        this.queryStatsService = queryStatsService;
+        this.couchbaseService = couchbaseService;
+    }
+
+    // http://localhost:8080/admin/queries/top
+    // most expensive N1QL and view query shapes, to find out which queries need an index
+    @RequestMapping(value = "/queries/top", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> getTopQueries() {
+        return new ResponseEntity<>(queryStatsService.topQueries().toString(), HttpStatus.OK);
+    }
+
+    // http://localhost:8080/admin/targets
+    // latency average and health of each cluster/bucket reads are routed to
+    @RequestMapping(value = "/targets", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> getTargets() {
+        return new ResponseEntity<>(couchbaseService.routingStatus().toString(), HttpStatus.OK);
+    }
+}
@@ -1,6 +1,7 @@
 package own.controller;
 
 import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
 import com.couchbase.client.java.document.json.JsonArray;
 import com.couchbase.client.java.document.json.JsonObject;
 import com.couchbase.client.java.query.N1qlQueryResult;
@@ -9,15 +10,20 @@ import com.couchbase.client.java.view.AsyncViewResult;
 import com.couchbase.client.java.view.ViewResult;
 import com.couchbase.client.java.view.ViewRow;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import own.service.MyBeerStatsService;
 import own.service.MyCouchbaseService;
+import own.service.MyTraceService;
+import own.service.Trace;
 
 import java.util.Iterator;
 import java.util.Optional;
@@ -30,13 +36,19 @@ import java.util.Optional;
 public class MyBeerController {
 
     private final MyCouchbaseService myCouchbaseService;
+    private final MyBeerStatsService myBeerStatsService;
+    private final MyTraceService myTraceService;
 
     @Autowired
-    public MyBeerController(MyCouchbaseService myCouchbaseService) {
+    public MyBeerController(MyCouchbaseService myCouchbaseService, MyBeerStatsService myBeerStatsService,
+                            MyTraceService myTraceService) {
         this.myCouchbaseService = myCouchbaseService;
+        this.myBeerStatsService = myBeerStatsService;
+        this.myTraceService = myTraceService;
     }
 
     // http://localhost:8080/mybeer/21st_amendment_brewery_cafe
+    // Requests with the same X-Session-Id header read their own writes (see couchbase.routing.readYourWritesMillis)
     @RequestMapping(method = RequestMethod.GET, value = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<String> getBeer(@PathVariable String id) {
         JsonDocument doc = myCouchbaseService.read(id);
@@ -47,6 +59,44 @@ public class MyBeerController {
         }
     }
 
+    // curl -X PUT -H "Content-Type: application/json" -d '{"type":"beer","name":"My IPA","brewery_id":"21st_amendment_brewery_cafe","abv":6.5}' http://localhost:8080/mybeer/my_ipa
+    @RequestMapping(method = RequestMethod.PUT, value = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> upsertBeer(@PathVariable String id, @RequestBody String body) {
+        JsonObject content;
+        try {
+            content = JsonObject.fromJson(body);
+        } catch (Exception e) {
+            return new ResponseEntity<>("Invalid JSON - " + e.getMessage(), HttpStatus.BAD_REQUEST);
+        }
+        myCouchbaseService.upsert(id, content);
+        return new ResponseEntity<>(content.toString(), HttpStatus.OK);
+    }
+
+    // curl -X DELETE http://localhost:8080/mybeer/my_ipa
+    @RequestMapping(method = RequestMethod.DELETE, value = "/{id}")
+    public ResponseEntity<String> removeBeer(@PathVariable String id) {
+        try {
+            myCouchbaseService.remove(id);
+            return new ResponseEntity<>(HttpStatus.OK);
+        } catch (DocumentDoesNotExistException e) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+    }
+
+    // http://localhost:8080/mybeer/category/North%20American%20Ale/stats
+    // served from precomputed statistics, it doesn't query the bucket
+    @RequestMapping(method = RequestMethod.GET, value = "/category/{category}/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> getCategoryStats(@PathVariable String category) {
+        JsonObject stats = myBeerStatsService.categoryStats(category);
+        if (stats != null) {
+            return new ResponseEntity<>(stats.toString(), HttpStatus.OK);
+        } else if (!myBeerStatsService.isLoaded()) {
+            return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+        } else {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+    }
+
     // http://localhost:8080/mybeer/usingN1QlQuery
     @RequestMapping(value = "/usingN1QlQuery", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<String> listBeersUsingN1QLQuery() {
@@ -104,23 +154,40 @@ public class MyBeerController {
     @RequestMapping(method = RequestMethod.GET, value = "/search/{token}", produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<String> searchBeer(@PathVariable final String token) {
 
+        Trace trace = myTraceService.start("searchBeer", token);
+
         //we'll get all beers asynchronously and compose on the stream to extract those that match
-        AsyncViewResult viewResult = myCouchbaseService.findAllBeersAsync().toBlocking().single();
+        AsyncViewResult viewResult = myCouchbaseService.findAllBeersAsync(trace).toBlocking().single();
 
         if (viewResult.success()) {
-            return myCouchbaseService.searchBeer(viewResult.rows(), token)
+            return myCouchbaseService.searchBeer(viewResult.rows(), token, trace)
                     //transform the array into a ResponseEntity with correct status
-                    .map(objects -> new ResponseEntity<>(objects.toString(), HttpStatus.OK))
+                    .map(objects -> {
+                        long serializeStart = trace.start();
+                        String body = objects.toString();
+                        trace.phase("serialize", serializeStart);
+                        return new ResponseEntity<>(body, finishTrace(trace), HttpStatus.OK);
+                    })
                     //in case of errors during this processing, return a ERROR 500 response with detail
                     .onErrorReturn(throwable -> new ResponseEntity<String>("Error while parsing results - " + throwable,
-                            HttpStatus.INTERNAL_SERVER_ERROR))
+                            finishTrace(trace), HttpStatus.INTERNAL_SERVER_ERROR))
                     //block and send back the response
                     .toBlocking().single();
         } else {
             return new ResponseEntity<>("Error while searching - " + viewResult.error(),
-                    HttpStatus.INTERNAL_SERVER_ERROR);
+                    finishTrace(trace), HttpStatus.INTERNAL_SERVER_ERROR);
         }
     }
 
+    // Server-Timing header is only sent for sampled requests. null (no headers) otherwise, so nothing is allocated
+    private HttpHeaders finishTrace(Trace trace) {
+        if (!trace.isSampled()) {
+            return null;
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Server-Timing", trace.serverTiming());
+        myTraceService.finish(trace);
+        return headers;
+    }
 
 }
@@ -3,18 +3,21 @@ package own.controller;
 import com.couchbase.client.java.document.JsonDocument;
 import com.couchbase.client.java.document.json.JsonObject;
 import com.couchbase.client.java.view.AsyncViewResult;
-import com.couchbase.client.java.view.AsyncViewRow;
 import com.couchbase.client.java.view.ViewQuery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import own.service.MyBeerStatsService;
 import own.service.MyCouchbaseService;
+import own.service.MyTraceService;
+import own.service.Trace;
 import rx.Observable;
 import rx.functions.Func1;
 
@@ -30,10 +33,15 @@ public class MyBreweriesController {
     private static final Logger LOGGER =  LoggerFactory.getLogger(MyBreweriesController.class);
 
     private final MyCouchbaseService couchbaseService;
+    private final MyBeerStatsService beerStatsService;
+    private final MyTraceService traceService;
 
     @Autowired
-    public MyBreweriesController(final MyCouchbaseService couchbaseService) {
+    public MyBreweriesController(final MyCouchbaseService couchbaseService, final MyBeerStatsService beerStatsService,
+                                 final MyTraceService traceService) {
         this.couchbaseService = couchbaseService;
+        this.beerStatsService = beerStatsService;
+        this.traceService = traceService;
     }
 
     // http://localhost:8080/mybrewery/appalachian_brewing_company
@@ -42,28 +50,24 @@ public class MyBreweriesController {
 
         ViewQuery forBrewery = MyCouchbaseService.createQueryBeersForBrewery(id);
 
-        Observable<JsonDocument> brewery = couchbaseService.asyncRead(id);
+        Trace trace = traceService.start("getBrewery", id);
+
+        Observable<JsonDocument> brewery = couchbaseService.asyncRead(id, trace);
         Observable<List<JsonDocument>> beers =
-                couchbaseService.findBeersForBreweryAsync(id)
-                        //extract rows from the result
-                        .flatMap(new Func1<AsyncViewResult, Observable<AsyncViewRow>>() {
+                couchbaseService.findBeersForBreweryAsync(id, trace)
+                        //extract rows from the result, then the actual document (pair of brewery id and beer id) of each row
+                        //the fan-out is subscribed once the view result has arrived, so its phase doesn't include the view query
+                        .flatMap(new Func1<AsyncViewResult, Observable<JsonDocument>>() {
                             @Override
-                            public Observable<AsyncViewRow> call(AsyncViewResult asyncViewResult) {
-                                return asyncViewResult.rows();
-                            }
-                        })
-                        //extract the actual document (pair of brewery id and beer id)
-                        .flatMap(new Func1<AsyncViewRow, Observable<JsonDocument>>() {
-                            @Override
-                            public Observable<JsonDocument> call(AsyncViewRow asyncViewRow) {
-                                return asyncViewRow.document();
+                            public Observable<JsonDocument> call(AsyncViewResult asyncViewResult) {
+                                return couchbaseService.fetchDocuments(asyncViewResult.rows(), trace);
                             }
                         })
                         .toList();
 
         //in the next observable we'll transform list of brewery-beer pairs into an array of beers
         //then we'll inject it into the associated brewery jsonObject
-        Observable<JsonDocument> fullBeers = couchbaseService.concatBeerInfoToBrewery(brewery, beers)
+        Observable<JsonDocument> fullBeers = couchbaseService.concatBeerInfoToBrewery(brewery, beers, trace)
                 //take care of the case where no corresponding brewery info was found
                 .singleOrDefault(JsonDocument.create("empty",
                         JsonObject.create().put("error", "brewery " + id + " not found")))
@@ -78,13 +82,41 @@ public class MyBreweriesController {
                 });
 
         try {
-            return new ResponseEntity<String>(fullBeers.toBlocking().single().content().toString(), HttpStatus.OK);
+            JsonDocument fullBeersDoc = fullBeers.toBlocking().single();
+            long serializeStart = trace.start();
+            String body = fullBeersDoc.content().toString();
+            trace.phase("serialize", serializeStart);
+            return new ResponseEntity<String>(body, finishTrace(trace), HttpStatus.OK);
         } catch (Exception e) {
             LOGGER.error("Unable to get brewery " + id, e);
-            return new ResponseEntity<String>(HttpStatus.INTERNAL_SERVER_ERROR);
+            return new ResponseEntity<String>(finishTrace(trace), HttpStatus.INTERNAL_SERVER_ERROR);
         }
 
     }
 
+    // http://localhost:8080/mybrewery/appalachian_brewing_company/stats
+    // served from precomputed statistics, it doesn't query the bucket
+    @RequestMapping("/{id}/stats")
+    public ResponseEntity<String> getBreweryStats(@PathVariable String id) {
+        JsonObject stats = beerStatsService.breweryStats(id);
+        if (stats != null) {
+            return new ResponseEntity<>(stats.toString(), HttpStatus.OK);
+        } else if (!beerStatsService.isLoaded()) {
+            return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+        } else {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+    }
+
+    // Server-Timing header is only sent for sampled requests. null (no headers) otherwise, so nothing is allocated
+    private HttpHeaders finishTrace(Trace trace) {
+        if (!trace.isSampled()) {
+            return null;
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Server-Timing", trace.serverTiming());
+        traceService.finish(trace);
+        return headers;
+    }
 
-}
\ No newline at end of file
+}
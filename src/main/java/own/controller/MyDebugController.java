@@ -0,0 +1,32 @@
+package own.controller;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+import own.service.MyTraceService;
+
+/**
+ * Endpoints to look into the running application.
+ */
+@RestController
+@RequestMapping("/debug")
+public class MyDebugController {
+
+    private final MyTraceService traceService;
+
+    @Autowired
+    public MyDebugController(MyTraceService traceService) {
+        this.traceService = traceService;
+    }
+
+    // http://localhost:8080/debug/traces
+    // only sampled requests are traced, see 'tracing.sampleRate' in application.yml
+    @RequestMapping(value = "/traces", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> getTraces() {
+        return new ResponseEntity<>(traceService.recentTraces().toString(), HttpStatus.OK);
+    }
+}
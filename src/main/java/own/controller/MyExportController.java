@@ -0,0 +1,58 @@
+package own.controller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+import own.service.MyExportService;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Bulk export of the bucket as gzip NDJSON.
+ * Throughput (rows/sec, bytes/sec) is logged at the end of every export and returned when exporting to a file.
+ */
+@RestController
+@RequestMapping("/myexport")
+public class MyExportController {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MyExportController.class);
+
+    private final MyExportService exportService;
+
+    @Autowired
+    public MyExportController(MyExportService exportService) {
+        this.exportService = exportService;
+    }
+
+    // http://localhost:8080/myexport/beers
+    // curl -s http://localhost:8080/myexport/beers | gunzip | head
+    @RequestMapping(value = "/beers", method = RequestMethod.GET)
+    public void exportBeers(HttpServletResponse response) throws IOException {
+        response.setContentType("application/gzip");
+        response.setHeader("Content-Disposition", "attachment; filename=\"beers.ndjson.gz\"");
+        // once streaming has started, the status can't be changed anymore. In case of an error, the client gets a truncated gzip stream.
+        exportService.exportAllBeers(response.getOutputStream());
+        response.flushBuffer();
+    }
+
+    // curl -X POST http://localhost:8080/myexport/beers/file/beers.ndjson.gz
+    @RequestMapping(value = "/beers/file/{fileName:.+}", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> exportBeersToFile(@PathVariable String fileName) {
+        try {
+            return new ResponseEntity<>(exportService.exportAllBeersToFile(fileName).toJson().toString(), HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
+        } catch (Exception e) {
+            LOGGER.error("Unable to export beers to " + fileName, e);
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package own.controller;
+
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+import own.service.ReadSession;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Makes the X-Session-Id header of a request available to every read made while handling it, so that a session that
+ * has just written reads from the primary target whatever the endpoint (see couchbase.routing.readYourWritesMillis).
+ */
+public class ReadSessionInterceptor extends HandlerInterceptorAdapter {
+
+    public static final String SESSION_HEADER = "X-Session-Id";
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        ReadSession.set(request.getHeader(SESSION_HEADER));
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        ReadSession.clear();
+    }
+}
@@ -0,0 +1,151 @@
+package own.service;
+
+import com.couchbase.client.java.document.json.JsonObject;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Number of beers and min/avg/max abv of beers, grouped by one key (a brewery id or a category).
+ * <p>
+ * Each key is interned once to a dense slot number. The statistics live in parallel primitive arrays indexed by slot,
+ * so adding or removing a beer doesn't allocate anything, and the table is a handful of arrays instead of a map holding
+ * a boxed stats object per key. Arrays double in size when they are full.
+ * <p>
+ * min and max can't be maintained when a beer is removed, so {@link #remove(int, double)} tells the caller when the
+ * removed abv was the min or the max. The caller then recomputes them using {@link #resetMinMax(int, double, double)}.
+ */
+final class AbvStatsTable {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    private int[] beerCounts = new int[INITIAL_CAPACITY];
+    private int[] abvCounts = new int[INITIAL_CAPACITY];
+    private double[] abvSums = new double[INITIAL_CAPACITY];
+    private double[] abvMins = newMins(INITIAL_CAPACITY);
+    private double[] abvMaxs = newMaxs(INITIAL_CAPACITY);
+    private int size;
+
+    /**
+     * @return the slot of the key, a new slot is assigned if the key was never seen.
+     */
+    synchronized int intern(String key) {
+        Integer slot = slots.get(key);
+        if (slot != null) {
+            return slot;
+        }
+        if (size == beerCounts.length) {
+            grow();
+        }
+        slots.put(key, size);
+        return size++;
+    }
+
+    /**
+     * @return the slot of the key, or -1 if the key was never seen.
+     */
+    synchronized int find(String key) {
+        Integer slot = slots.get(key);
+        return slot != null ? slot : -1;
+    }
+
+    /**
+     * @param abv abv of the beer, NaN if the beer has no abv.
+     */
+    synchronized void add(int slot, double abv) {
+        beerCounts[slot]++;
+        if (!Double.isNaN(abv)) {
+            abvCounts[slot]++;
+            abvSums[slot] += abv;
+            abvMins[slot] = Math.min(abvMins[slot], abv);
+            abvMaxs[slot] = Math.max(abvMaxs[slot], abv);
+        }
+    }
+
+    /**
+     * @param abv abv the beer was added with, NaN if the beer had no abv.
+     * @return true if min and max have to be recomputed by the caller.
+     */
+    synchronized boolean remove(int slot, double abv) {
+        beerCounts[slot]--;
+        if (Double.isNaN(abv)) {
+            return false;
+        }
+        abvCounts[slot]--;
+        abvSums[slot] -= abv;
+        if (abvCounts[slot] == 0) {
+            abvSums[slot] = 0;
+            abvMins[slot] = Double.POSITIVE_INFINITY;
+            abvMaxs[slot] = Double.NEGATIVE_INFINITY;
+            return false;
+        }
+        return abv <= abvMins[slot] || abv >= abvMaxs[slot];
+    }
+
+    synchronized void resetMinMax(int slot, double min, double max) {
+        abvMins[slot] = min;
+        abvMaxs[slot] = max;
+    }
+
+    /**
+     * Forget all the keys and their statistics.
+     */
+    synchronized void clear() {
+        slots.clear();
+        beerCounts = new int[INITIAL_CAPACITY];
+        abvCounts = new int[INITIAL_CAPACITY];
+        abvSums = new double[INITIAL_CAPACITY];
+        abvMins = newMins(INITIAL_CAPACITY);
+        abvMaxs = newMaxs(INITIAL_CAPACITY);
+        size = 0;
+    }
+
+    /**
+     * @return the statistics of the key, or null if the key has no beers.
+     */
+    synchronized JsonObject toJson(String key) {
+        Integer slot = slots.get(key);
+        if (slot == null || beerCounts[slot] == 0) {
+            return null;
+        }
+        JsonObject abv = JsonObject.create().put("count", abvCounts[slot]);
+        if (abvCounts[slot] > 0) {
+            abv.put("min", abvMins[slot])
+                    .put("avg", abvSums[slot] / abvCounts[slot])
+                    .put("max", abvMaxs[slot]);
+        }
+        return JsonObject.create()
+                .put("id", key)
+                .put("beers", beerCounts[slot])
+                .put("abv", abv);
+    }
+
+    private void grow() {
+        int capacity = beerCounts.length * 2;
+        beerCounts = Arrays.copyOf(beerCounts, capacity);
+        abvCounts = Arrays.copyOf(abvCounts, capacity);
+        abvSums = Arrays.copyOf(abvSums, capacity);
+
+        double[] mins = newMins(capacity);
+        System.arraycopy(abvMins, 0, mins, 0, size);
+        abvMins = mins;
+
+        double[] maxs = newMaxs(capacity);
+        System.arraycopy(abvMaxs, 0, maxs, 0, size);
+        abvMaxs = maxs;
+    }
+
+    private static double[] newMins(int capacity) {
+        double[] mins = new double[capacity];
+        Arrays.fill(mins, Double.POSITIVE_INFINITY);
+        return mins;
+    }
+
+    private static double[] newMaxs(int capacity) {
+        double[] maxs = new double[capacity];
+        Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+        return maxs;
+    }
+}
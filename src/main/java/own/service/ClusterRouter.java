@@ -0,0 +1,392 @@
+package own.service;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.functions.Func1;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Routes reads to the fastest healthy bucket among several targets (e.g. XDCR replicas of the same bucket in
+ * different sites), and writes to the primary one.
+ * <p>
+ * Each target keeps one exponentially weighted moving average (EWMA) of latency per kind of {@link Operation}, so that
+ * a ~1 ms get isn't compared with a full view scan. A read goes to the healthy target with the lowest average for its
+ * kind first, and fails over to the next one if it fails. A target without any measurement for a kind yet goes after
+ * the measured ones (it gets probe reads, see below).
+ * <p>
+ * A read has failed when it throws, or when its result is an error according to the 'isSuccess' function of the caller
+ * (e.g. a N1QL or view result with errors). XDCR doesn't replicate GSI indexes nor design documents, so a replica
+ * missing them answers fast, with an error: such results must not count as fast successful reads. If every target
+ * returns an error result, the last one is returned to the caller.
+ * <p>
+ * A target that isn't chosen gets no reads, so its average would stay frozen at its last value. To avoid that, once
+ * per 'probeIntervalMillis' and per kind, one read is sent to such a target first (a probe, it still fails over).
+ * <p>
+ * After 'failureThreshold' consecutive failures of one kind, a target is down for that kind (a target can serve gets
+ * while its views fail). Once 'retryAfterMillis' has passed, a single read of that kind is sent to it as a probe. If it
+ * succeeds the target is healthy again for that kind, otherwise it waits another 'retryAfterMillis'.
+ * <p>
+ * Read-your-writes: after a write, {@link #pin(String)} makes the reads of that session go to the primary only, for
+ * 'readYourWritesMillis', so that they don't hit a replica that hasn't received the write yet. Pinned reads don't
+ * fail over, as any other target could return stale data. At most {@link #MAX_PINNED_SESSIONS} sessions are pinned,
+ * the oldest pin is dropped first.
+ * <p>
+ * The router only needs Bucket instances, so it can be run against mock clusters or stub buckets.
+ */
+public class ClusterRouter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClusterRouter.class);
+
+    static final int MAX_PINNED_SESSIONS = 10000;
+
+    /**
+     * Kinds of reads, each with its own latency average.
+     */
+    public enum Operation {
+        GET, N1QL, VIEW
+    }
+
+    private final List<Target> targets;
+    private final Target primary;
+    private final double ewmaAlpha;
+    private final int failureThreshold;
+    private final long retryAfterMillis;
+    private final long readYourWritesMillis;
+    private final long probeIntervalMillis;
+    private final LongSupplier clock;
+
+    // session id -> pinned until, in pin order (guarded by itself)
+    private final Map<String, Long> pinnedSessions = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_PINNED_SESSIONS;
+        }
+    };
+
+    /**
+     * @param targets all the targets, including the primary one.
+     */
+    public ClusterRouter(List<Target> targets, Target primary, double ewmaAlpha, int failureThreshold,
+                         long retryAfterMillis, long readYourWritesMillis, long probeIntervalMillis) {
+        this(targets, primary, ewmaAlpha, failureThreshold, retryAfterMillis, readYourWritesMillis, probeIntervalMillis,
+                System::currentTimeMillis);
+    }
+
+    ClusterRouter(List<Target> targets, Target primary, double ewmaAlpha, int failureThreshold, long retryAfterMillis,
+                  long readYourWritesMillis, long probeIntervalMillis, LongSupplier clock) {
+        if (!targets.contains(primary)) {
+            throw new IllegalArgumentException("Primary target " + primary.getName() + " is not one of the targets");
+        }
+        this.targets = new ArrayList<>(targets);
+        this.primary = primary;
+        this.ewmaAlpha = ewmaAlpha;
+        this.failureThreshold = failureThreshold;
+        this.retryAfterMillis = retryAfterMillis;
+        this.readYourWritesMillis = readYourWritesMillis;
+        this.probeIntervalMillis = probeIntervalMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * @return the bucket writes (and everything that isn't routed) go to.
+     */
+    public Bucket primary() {
+        return primary.getBucket();
+    }
+
+    /**
+     * Same as {@link #read(String, Operation, Func1, Func1)}, for reads whose results are never errors (e.g. gets).
+     */
+    public <T> T read(String sessionId, Operation kind, Func1<Bucket, T> operation) {
+        return read(sessionId, kind, operation, result -> true);
+    }
+
+    /**
+     * Run a read on the best target, failing over to the next ones if it throws or returns an error result.
+     *
+     * @param sessionId session of the caller for read-your-writes, may be null.
+     * @param isSuccess tells whether a result is a success, e.g. N1qlQueryResult::finalSuccess.
+     */
+    public <T> T read(String sessionId, Operation kind, Func1<Bucket, T> operation, Func1<T, Boolean> isSuccess) {
+        RuntimeException lastError = null;
+        T errorResult = null;
+        for (Target target : candidates(sessionId, kind)) {
+            long start = System.nanoTime();
+            try {
+                T result = operation.call(target.getBucket());
+                if (isSuccess.call(result)) {
+                    target.success(kind, System.nanoTime() - start, ewmaAlpha, clock.getAsLong());
+                    return result;
+                }
+                target.failure(kind, failureThreshold, retryAfterMillis, clock.getAsLong());
+                LOGGER.warn("Read returned an error on target " + target.getName() + ", failing over");
+                errorResult = result;
+            } catch (RuntimeException e) {
+                target.failure(kind, failureThreshold, retryAfterMillis, clock.getAsLong());
+                LOGGER.warn("Read failed on target " + target.getName() + ", failing over", e);
+                lastError = e;
+            }
+        }
+        if (errorResult != null) {
+            return errorResult;
+        }
+        throw lastError;
+    }
+
+    /**
+     * Same as {@link #readAsync(String, Operation, Func1, Func1)}, for reads whose results are never errors (e.g. gets).
+     */
+    public <T> Observable<T> readAsync(String sessionId, Operation kind, Func1<AsyncBucket, Observable<T>> operation) {
+        return readAsync(sessionId, kind, operation, result -> true);
+    }
+
+    /**
+     * Same as {@link #read(String, Operation, Func1, Func1)}, for async reads. A target has failed when its Observable
+     * terminates with an error or emits an error result, the read is then subscribed again on the next target.
+     * 'operation' must emit at most one result (a document, a view result...).
+     */
+    public <T> Observable<T> readAsync(String sessionId, Operation kind, Func1<AsyncBucket, Observable<T>> operation,
+                                       Func1<T, Boolean> isSuccess) {
+        List<Target> candidates = candidates(sessionId, kind);
+        return readAsync(candidates, 0, kind, operation, isSuccess);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Observable<T> readAsync(List<Target> candidates, int index, Operation kind,
+                                        Func1<AsyncBucket, Observable<T>> operation, Func1<T, Boolean> isSuccess) {
+        Target target = candidates.get(index);
+        return Observable.defer(() -> {
+            long start = System.nanoTime();
+            return operation.call(target.getBucket().async())
+                    .map(result -> {
+                        if (!isSuccess.call(result)) {
+                            throw new ErrorResultException(result);
+                        }
+                        return result;
+                    })
+                    .doOnCompleted(() -> target.success(kind, System.nanoTime() - start, ewmaAlpha, clock.getAsLong()))
+                    .onErrorResumeNext(throwable -> {
+                        target.failure(kind, failureThreshold, retryAfterMillis, clock.getAsLong());
+                        if (index + 1 < candidates.size()) {
+                            LOGGER.warn("Read failed on target " + target.getName() + ", failing over", throwable);
+                            return readAsync(candidates, index + 1, kind, operation, isSuccess);
+                        }
+                        if (throwable instanceof ErrorResultException) {
+                            return Observable.just((T) ((ErrorResultException) throwable).result);
+                        }
+                        return Observable.error(throwable);
+                    });
+        });
+    }
+
+    /**
+     * Make the reads of a session go to the primary target for a while, after this session has written something.
+     */
+    public void pin(String sessionId) {
+        if (sessionId == null || readYourWritesMillis <= 0) {
+            return;
+        }
+        synchronized (pinnedSessions) {
+            // remove first, so that a pinned again session moves to the end of the eviction order
+            pinnedSessions.remove(sessionId);
+            pinnedSessions.put(sessionId, clock.getAsLong() + readYourWritesMillis);
+        }
+    }
+
+    private boolean isPinned(String sessionId, long now) {
+        if (sessionId == null) {
+            return false;
+        }
+        synchronized (pinnedSessions) {
+            Long pinnedUntil = pinnedSessions.get(sessionId);
+            if (pinnedUntil == null) {
+                return false;
+            }
+            if (pinnedUntil > now) {
+                return true;
+            }
+            pinnedSessions.remove(sessionId);
+            return false;
+        }
+    }
+
+    /**
+     * @return targets to try, in order.
+     */
+    List<Target> candidates(String sessionId, Operation kind) {
+        long now = clock.getAsLong();
+        if (isPinned(sessionId, now)) {
+            return Collections.singletonList(primary);
+        }
+
+        List<Target> healthy = new ArrayList<>(targets.size());
+        List<Target> recovering = new ArrayList<>(1);
+        List<Target> down = new ArrayList<>();
+        for (Target target : targets) {
+            if (target.isHealthy(kind)) {
+                healthy.add(target);
+            } else if (target.claimRecoveryProbe(kind, now, retryAfterMillis)) {
+                recovering.add(target);
+            } else {
+                down.add(target);
+            }
+        }
+        healthy.sort((a, b) -> compareLatency(a.getLatencyNanos(kind), b.getLatencyNanos(kind)));
+        // the best target gets the read anyway, look for another one whose average hasn't been refreshed for a while
+        for (int i = 1; i < healthy.size(); i++) {
+            if (healthy.get(i).claimLatencyProbe(kind, now, probeIntervalMillis)) {
+                healthy.add(0, healthy.remove(i));
+                break;
+            }
+        }
+
+        // the probe read of a recovering target goes first, and fails over to the healthy ones
+        List<Target> result = new ArrayList<>(targets.size());
+        result.addAll(recovering);
+        result.addAll(healthy);
+        // when every target is down, still try them rather than failing without a try
+        if (result.isEmpty()) {
+            result.addAll(down);
+        }
+        return result;
+    }
+
+    // 0 means no measurement yet, such a target goes after the measured ones
+    private static int compareLatency(double a, double b) {
+        if (a == 0 || b == 0) {
+            return Boolean.compare(a == 0, b == 0);
+        }
+        return Double.compare(a, b);
+    }
+
+    public JsonArray status() {
+        JsonArray status = JsonArray.create();
+        for (Target target : targets) {
+            JsonObject kinds = JsonObject.create();
+            for (Operation kind : Operation.values()) {
+                kinds.put(kind.name(), JsonObject.create()
+                        .put("healthy", target.isHealthy(kind))
+                        .put("latencyMillis", target.getLatencyNanos(kind) / 1e6)
+                        .put("consecutiveFailures", target.stats(kind).failures.get()));
+            }
+            status.add(JsonObject.create()
+                    .put("name", target.getName())
+                    .put("primary", target == primary)
+                    .put("operations", kinds));
+        }
+        return status;
+    }
+
+    /**
+     * A result that 'isSuccess' rejected, carried through onError so that the read fails over.
+     */
+    private static final class ErrorResultException extends RuntimeException {
+        private final Object result;
+
+        private ErrorResultException(Object result) {
+            super("Error result", null, false, false);
+            this.result = result;
+        }
+    }
+
+    /**
+     * One bucket reads can be routed to, with its latency averages and health per kind of {@link Operation}.
+     */
+    public static final class Target {
+        private final String name;
+        private final Bucket bucket;
+        private final OperationStats[] stats = new OperationStats[Operation.values().length];
+
+        public Target(String name, Bucket bucket) {
+            this.name = name;
+            this.bucket = bucket;
+            for (int i = 0; i < stats.length; i++) {
+                stats[i] = new OperationStats();
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Bucket getBucket() {
+            return bucket;
+        }
+
+        public double getLatencyNanos(Operation kind) {
+            return Double.longBitsToDouble(stats(kind).latencyBits.get());
+        }
+
+        boolean isHealthy(Operation kind) {
+            return !stats(kind).down;
+        }
+
+        private OperationStats stats(Operation kind) {
+            return stats[kind.ordinal()];
+        }
+
+        /**
+         * @return true for a single caller once per 'retryAfterMillis' while the target is down for that kind.
+         */
+        boolean claimRecoveryProbe(Operation kind, long now, long retryAfterMillis) {
+            AtomicLong retryAt = stats(kind).retryAt;
+            long at = retryAt.get();
+            return now >= at && retryAt.compareAndSet(at, now + retryAfterMillis);
+        }
+
+        /**
+         * @return true for a single caller once per 'probeIntervalMillis' without reads of that kind on this target.
+         */
+        boolean claimLatencyProbe(Operation kind, long now, long probeIntervalMillis) {
+            AtomicLong lastUsed = stats(kind).lastUsedAt;
+            long last = lastUsed.get();
+            return now - last >= probeIntervalMillis && lastUsed.compareAndSet(last, now);
+        }
+
+        void success(Operation kind, long latencyNanos, double alpha, long now) {
+            OperationStats operationStats = stats(kind);
+            operationStats.failures.set(0);
+            operationStats.down = false;
+            operationStats.lastUsedAt.set(now);
+            AtomicLong bits = operationStats.latencyBits;
+            long current;
+            long updated;
+            do {
+                current = bits.get();
+                double average = Double.longBitsToDouble(current);
+                updated = Double.doubleToLongBits(average == 0 ? latencyNanos : alpha * latencyNanos + (1 - alpha) * average);
+            } while (!bits.compareAndSet(current, updated));
+        }
+
+        void failure(Operation kind, int failureThreshold, long retryAfterMillis, long now) {
+            OperationStats operationStats = stats(kind);
+            if (operationStats.failures.incrementAndGet() >= failureThreshold) {
+                operationStats.retryAt.set(now + retryAfterMillis);
+                operationStats.down = true;
+            }
+        }
+    }
+
+    private static final class OperationStats {
+        // EWMA of the latency in nanos, as double bits. 0 until the first successful read
+        private final AtomicLong latencyBits = new AtomicLong(Double.doubleToLongBits(0));
+        // last time a read was sent to the target as a probe, or succeeded on it
+        private final AtomicLong lastUsedAt = new AtomicLong();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicLong retryAt = new AtomicLong();
+        private volatile boolean down;
+    }
+}
@@ -0,0 +1,14 @@
+package own.service;
+
+import com.couchbase.client.java.document.JsonDocument;
+
+/**
+ * Gets notified of every write made through {@link MyCouchbaseService}, after the write succeeded in the bucket.
+ * Listeners are called on the writing thread, so they should be quick.
+ */
+public interface DocumentWriteListener {
+
+    void onUpsert(JsonDocument document);
+
+    void onRemove(String id);
+}
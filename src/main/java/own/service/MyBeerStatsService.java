@@ -0,0 +1,276 @@
+package own.service;
+
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import rx.Observable;
+import rx.Subscription;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Precomputed number of beers and min/avg/max abv per brewery and per category.
+ * <p>
+ * At startup, all the beers are loaded in the background using the same partitioned, pipelined scan as the export
+ * (see {@link MyCouchbaseService#scanAllBeersAsync(int, int, int)}). Range queries and document gets run in parallel,
+ * while adding a beer to the statistics is just a few array updates.
+ * After that, statistics are kept up to date incrementally with the writes made through {@link MyCouchbaseService}.
+ * Writes made directly to the bucket by other applications are not seen until the next restart.
+ */
+@Service
+public class MyBeerStatsService implements DocumentWriteListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MyBeerStatsService.class);
+
+    private final MyCouchbaseService couchbaseService;
+
+    private final AbvStatsTable breweries = new AbvStatsTable();
+    private final AbvStatsTable categories = new AbvStatsTable();
+
+    // what each beer has contributed to the tables, so that it can be taken out again when the beer changes (guarded by this)
+    private final Map<String, BeerEntry> beers = new HashMap<>();
+    // the same entries by brewery slot and by category slot, so that recomputing a min/max only visits the beers of
+    // that brewery or category (guarded by this)
+    private final List<Set<BeerEntry>> beersByBrewery = new ArrayList<>();
+    private final List<Set<BeerEntry>> beersByCategory = new ArrayList<>();
+    // beers written while the initial load is running. The load must not overwrite them with what it has read (guarded by this)
+    private final Set<String> writtenWhileLoading = new HashSet<>();
+    private volatile boolean loaded;
+    private volatile boolean stopped;
+    private volatile Subscription loading;
+
+    @Value("${stats.partitions:8}")
+    private int partitions;
+
+    @Value("${stats.parallelPartitions:4}")
+    private int parallelPartitions;
+
+    @Value("${stats.maxInFlight:64}")
+    private int maxInFlight;
+
+    @Value("${stats.retryInitialMillis:1000}")
+    private long retryInitialMillis;
+
+    @Value("${stats.retryMaxMillis:60000}")
+    private long retryMaxMillis;
+
+    @Autowired
+    public MyBeerStatsService(MyCouchbaseService couchbaseService) {
+        this.couchbaseService = couchbaseService;
+    }
+
+    @PostConstruct
+    public void load() {
+        couchbaseService.addWriteListener(this);
+        load(0);
+    }
+
+    @PreDestroy
+    public void preDestroy() {
+        stopped = true;
+        Subscription current = loading;
+        if (current != null) {
+            current.unsubscribe();
+        }
+    }
+
+    /**
+     * If a load fails, the partial statistics are thrown away and the load starts over after an exponential backoff.
+     * This includes a partition whose view query returns an error result, the scan then fails instead of completing
+     * without the beers of that partition. Beers written in the meantime are read again by the new scan, with their
+     * latest content.
+     */
+    private void load(final int attempt) {
+        final long start = System.nanoTime();
+        loading = couchbaseService.scanAllBeersAsync(partitions, parallelPartitions, maxInFlight)
+                .subscribe(
+                        this::addLoadedBeer,
+                        throwable -> {
+                            long backoffMillis = Math.min(retryMaxMillis, retryInitialMillis << Math.min(attempt, 20));
+                            LOGGER.error("Unable to load beer statistics, retrying in " + backoffMillis + " ms", throwable);
+                            if (!stopped) {
+                                loading = Observable.timer(backoffMillis, TimeUnit.MILLISECONDS)
+                                        .subscribe(tick -> {
+                                            clear();
+                                            load(attempt + 1);
+                                        });
+                            }
+                        },
+                        () -> {
+                            synchronized (this) {
+                                loaded = true;
+                                writtenWhileLoading.clear();
+                                LOGGER.info("Beer statistics loaded - " + beers.size() + " beers in "
+                                        + (System.nanoTime() - start) / 1000000 + " ms");
+                            }
+                        });
+    }
+
+    private synchronized void clear() {
+        beers.clear();
+        beersByBrewery.clear();
+        beersByCategory.clear();
+        writtenWhileLoading.clear();
+        breweries.clear();
+        categories.clear();
+    }
+
+    /**
+     * @return true once the initial load is done. Before that, statistics only cover the beers loaded so far.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return statistics of the beers of a brewery, or null if the brewery has no beers.
+     */
+    public JsonObject breweryStats(String breweryId) {
+        return withLoaded(breweries.toJson(breweryId));
+    }
+
+    /**
+     * @return statistics of the beers of a category, or null if the category has no beers.
+     */
+    public JsonObject categoryStats(String category) {
+        return withLoaded(categories.toJson(category));
+    }
+
+    private JsonObject withLoaded(JsonObject stats) {
+        return stats != null ? stats.put("complete", loaded) : null;
+    }
+
+    @Override
+    public synchronized void onUpsert(JsonDocument document) {
+        if (!loaded) {
+            writtenWhileLoading.add(document.id());
+        }
+        boolean isBeer = "beer".equals(stringField(document.content(), "type"));
+        // e.g. the strongest beer saved again with the same abv: nothing to update, and no min/max to recompute
+        if (isBeer && isUnchanged(beers.get(document.id()), document.content())) {
+            return;
+        }
+        removeBeer(document.id());
+        if (isBeer) {
+            addBeer(document.id(), document.content());
+        }
+    }
+
+    @Override
+    public synchronized void onRemove(String id) {
+        if (!loaded) {
+            writtenWhileLoading.add(id);
+        }
+        removeBeer(id);
+    }
+
+    private synchronized void addLoadedBeer(JsonDocument document) {
+        if (!beers.containsKey(document.id()) && !writtenWhileLoading.contains(document.id())) {
+            addBeer(document.id(), document.content());
+        }
+    }
+
+    private void addBeer(String id, JsonObject beer) {
+        String breweryId = stringField(beer, "brewery_id");
+        if (breweryId == null) {
+            return;
+        }
+        String category = stringField(beer, "category");
+        double abv = abv(beer);
+
+        BeerEntry entry = new BeerEntry(breweries.intern(breweryId),
+                category != null ? categories.intern(category) : -1, abv);
+        breweries.add(entry.brewerySlot, abv);
+        slotBeers(beersByBrewery, entry.brewerySlot).add(entry);
+        if (entry.categorySlot >= 0) {
+            categories.add(entry.categorySlot, abv);
+            slotBeers(beersByCategory, entry.categorySlot).add(entry);
+        }
+        beers.put(id, entry);
+    }
+
+    private boolean isUnchanged(BeerEntry entry, JsonObject beer) {
+        if (entry == null) {
+            return false;
+        }
+        String breweryId = stringField(beer, "brewery_id");
+        String category = stringField(beer, "category");
+        return breweryId != null && breweries.find(breweryId) == entry.brewerySlot
+                && (category != null ? categories.find(category) : -1) == entry.categorySlot
+                && Double.compare(abv(beer), entry.abv) == 0;
+    }
+
+    private static double abv(JsonObject beer) {
+        Object abvValue = beer.get("abv");
+        return abvValue instanceof Number ? ((Number) abvValue).doubleValue() : Double.NaN;
+    }
+
+    private static Set<BeerEntry> slotBeers(List<Set<BeerEntry>> beersBySlot, int slot) {
+        while (beersBySlot.size() <= slot) {
+            beersBySlot.add(new HashSet<>());
+        }
+        return beersBySlot.get(slot);
+    }
+
+    // documents written through the service can hold anything, so don't assume the field is a string
+    private static String stringField(JsonObject beer, String name) {
+        Object value = beer.get(name);
+        return value instanceof String ? (String) value : null;
+    }
+
+    private void removeBeer(String id) {
+        BeerEntry entry = beers.remove(id);
+        if (entry == null) {
+            return;
+        }
+        Set<BeerEntry> breweryBeers = beersByBrewery.get(entry.brewerySlot);
+        breweryBeers.remove(entry);
+        if (breweries.remove(entry.brewerySlot, entry.abv)) {
+            recomputeMinMax(breweries, entry.brewerySlot, breweryBeers);
+        }
+        if (entry.categorySlot >= 0) {
+            Set<BeerEntry> categoryBeers = beersByCategory.get(entry.categorySlot);
+            categoryBeers.remove(entry);
+            if (categories.remove(entry.categorySlot, entry.abv)) {
+                recomputeMinMax(categories, entry.categorySlot, categoryBeers);
+            }
+        }
+    }
+
+    // only needed when the removed beer had the min or the max abv, and only visits the beers of that slot
+    private static void recomputeMinMax(AbvStatsTable table, int slot, Set<BeerEntry> slotBeers) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (BeerEntry entry : slotBeers) {
+            if (!Double.isNaN(entry.abv)) {
+                min = Math.min(min, entry.abv);
+                max = Math.max(max, entry.abv);
+            }
+        }
+        table.resetMinMax(slot, min, max);
+    }
+
+    private static final class BeerEntry {
+        private final int brewerySlot;
+        private final int categorySlot;
+        private final double abv;
+
+        private BeerEntry(int brewerySlot, int categorySlot, double abv) {
+            this.brewerySlot = brewerySlot;
+            this.categorySlot = categorySlot;
+            this.abv = abv;
+        }
+    }
+}
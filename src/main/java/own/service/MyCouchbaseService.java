@@ -1,5 +1,6 @@
 package own.service;
 
+import com.couchbase.client.core.CouchbaseException;
 import com.couchbase.client.java.Bucket;
 import com.couchbase.client.java.Cluster;
 import com.couchbase.client.java.CouchbaseCluster;
@@ -15,14 +16,25 @@ import com.couchbase.client.java.view.AsyncViewResult;
 import com.couchbase.client.java.view.AsyncViewRow;
 import com.couchbase.client.java.view.ViewQuery;
 import com.couchbase.client.java.view.ViewResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import own.config.MyDatabaseConfig;
+import own.config.MyRoutingConfig;
+import own.service.ClusterRouter.Operation;
 import rx.Observable;
 import rx.functions.Func2;
 
 import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static com.couchbase.client.java.query.Select.select;
 import static com.couchbase.client.java.query.dsl.Expression.i;
@@ -40,34 +52,93 @@ import static com.couchbase.client.java.query.dsl.Expression.x;
 
  Bucket can be queried Synchronously or Asynchronously.
  Asynchronous approach uses RxJava(Reactive Pattern)
+
+ Several clusters/buckets can be configured (see MyRoutingConfig). Reads (gets, N1QL and view queries) are routed by ClusterRouter to the fastest healthy one, writes always go to the primary one.
 */
 
 @Service
 public class MyCouchbaseService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MyCouchbaseService.class);
+
     private final MyDatabaseConfig myDatabaseConfig;
+    private final MyQueryStatsService queryStatsService;
 
+    // primary bucket, used for writes
     private final Bucket bucket;
-    private final Cluster cluster;
+    private final List<Cluster> clusters;
+    private final ClusterRouter router;
+
+    private final List<DocumentWriteListener> writeListeners = new CopyOnWriteArrayList<>();
 
     @Autowired
-    public MyCouchbaseService(final MyDatabaseConfig myDatabaseConfig) {
+    public MyCouchbaseService(final MyDatabaseConfig myDatabaseConfig, final MyRoutingConfig myRoutingConfig,
+                              final MyQueryStatsService queryStatsService) {
         this.myDatabaseConfig = myDatabaseConfig;
+        this.queryStatsService = queryStatsService;
+
+        List<MyRoutingConfig.Target> targetConfigs = myRoutingConfig.getTargets();
+        if (targetConfigs.isEmpty()) {
+            MyRoutingConfig.Target single = new MyRoutingConfig.Target();
+            single.setName("default");
+            single.setNodes(myDatabaseConfig.getNodes());
+            single.setBucket(myDatabaseConfig.getBucket());
+            single.setPassword(myDatabaseConfig.getPassword());
+            targetConfigs = Collections.singletonList(single);
+        }
+
+        // names identify targets in the configuration ('primary') and in the routing status, so they must be unique
+        Set<String> names = new HashSet<>();
+        for (MyRoutingConfig.Target targetConfig : targetConfigs) {
+            if (targetConfig.getName() == null || targetConfig.getName().isEmpty()) {
+                throw new IllegalArgumentException("couchbase.routing.targets: every target needs a name");
+            }
+            if (!names.add(targetConfig.getName())) {
+                throw new IllegalArgumentException("couchbase.routing.targets: duplicate target name " + targetConfig.getName());
+            }
+        }
 
-        //  creates a new Couchbase connection object and makes the initial connection to the cluster. In this example, we supply a list of IP addresses obtained from the Database configuration object, populated by Spring Boot with the contents of the application.yml file. You can supply a string, or several strings concatenated with commas so that it can fall back to another node should a connection to a single node fail.
-        this.cluster = CouchbaseCluster.create(myDatabaseConfig.getNodes());
+        Map<List<String>, Cluster> clustersByNodes = new LinkedHashMap<>();
+        List<ClusterRouter.Target> targets = new ArrayList<>();
+        ClusterRouter.Target primary = null;
+        for (MyRoutingConfig.Target targetConfig : targetConfigs) {
+            //  creates a new Couchbase connection object and makes the initial connection to the cluster. In this example, we supply a list of IP addresses obtained from the Database configuration object, populated by Spring Boot with the contents of the application.yml file. You can supply a string, or several strings concatenated with commas so that it can fall back to another node should a connection to a single node fail.
+            // Targets on the same nodes (different buckets of one cluster) share the connection.
+            Cluster cluster = clustersByNodes.computeIfAbsent(targetConfig.getNodes(), nodes -> CouchbaseCluster.create(nodes));
+
+            // creates a connection to the bucket defined in the configuration. The Couchbase Java SDK provides both synchronous and asynchronous APIs that allow you to harness easily the power of asynchronous computation while maintaining the simplicity of synchronous operations. In this case, we are choosing to connect to both the cluster and the bucket synchronously as most of our application will be required to be synchronous, loading data before a web page can be generated. However, the asynchronous API is explained later on for use in creating view queries.
+            ClusterRouter.Target target = new ClusterRouter.Target(targetConfig.getName(),
+                    cluster.openBucket(targetConfig.getBucket(), targetConfig.getPassword()));
+            targets.add(target);
+            if (primary == null || targetConfig.getName().equals(myRoutingConfig.getPrimary())) {
+                primary = target;
+            }
+        }
+        if (myRoutingConfig.getPrimary() != null && !primary.getName().equals(myRoutingConfig.getPrimary())) {
+            throw new IllegalArgumentException("Primary target " + myRoutingConfig.getPrimary() + " is not configured");
+        }
 
-        // creates a connection to the bucket defined in the configuration. The Couchbase Java SDK provides both synchronous and asynchronous APIs that allow you to harness easily the power of asynchronous computation while maintaining the simplicity of synchronous operations. In this case, we are choosing to connect to both the cluster and the bucket synchronously as most of our application will be required to be synchronous, loading data before a web page can be generated. However, the asynchronous API is explained later on for use in creating view queries.
-        this.bucket = cluster.openBucket(myDatabaseConfig.getBucket(), myDatabaseConfig.getPassword());
+        this.clusters = new ArrayList<>(clustersByNodes.values());
+        this.router = new ClusterRouter(targets, primary, myRoutingConfig.getEwmaAlpha(),
+                myRoutingConfig.getFailureThreshold(), myRoutingConfig.getRetryAfterMillis(),
+                myRoutingConfig.getReadYourWritesMillis(), myRoutingConfig.getProbeIntervalMillis());
+        this.bucket = router.primary();
     }
 
     // The disconnect method is included even though it is not explicitly called in this example. Spring framework will invoke the method annotated with PreDestroy when destroying the context and shutting down the application.
     @PreDestroy
     public void preDestroy() {
-        if (this.cluster != null) {
-            this.cluster.disconnect();
+        for (Cluster cluster : clusters) {
+            cluster.disconnect();
         }
     }
 
+    /**
+     * Latency and health of each cluster/bucket target.
+     */
+    public JsonArray routingStatus() {
+        return router.status();
+    }
+
     /**
      * READ the document from database for a given doc id
      * <p>
@@ -76,14 +147,62 @@ public class MyCouchbaseService {
      * Another important aspect is error management. When the document doesn't exist, the SDK simply returns null. But should another error condition arise, a specific exception will be thrown (like a TimeOutException wrapped in a RuntimeException if the server couldn't respond in time). So it is important to ensure that your application can handle the errors that the SDK will pass up to it.
      */
     public JsonDocument read(String id) {
-        return bucket.get(id);
+        return router.read(ReadSession.current(), Operation.GET, routedBucket -> routedBucket.get(id));
     }
 
     /**
      * READ the document asynchronously from database.
      */
     public Observable<JsonDocument> asyncRead(String id) {
-        return bucket.async().get(id);
+        return router.readAsync(ReadSession.current(), Operation.GET, routedBucket -> routedBucket.get(id));
+    }
+
+    /**
+     * READ the document asynchronously from database, recording the get as phase 'get' of the trace.
+     */
+    public Observable<JsonDocument> asyncRead(String id, Trace trace) {
+        return trace.time("get", asyncRead(id));
+    }
+
+    /**
+     * UPSERT (insert or replace) the document with a given doc id, in the primary target.
+     * Reads of the current {@link ReadSession} are then pinned to the primary target (read-your-writes).
+     * Registered {@link DocumentWriteListener}s are notified once the bucket has accepted the write.
+     */
+    public JsonDocument upsert(String id, JsonObject content) {
+        JsonDocument stored = bucket.upsert(JsonDocument.create(id, content));
+        router.pin(ReadSession.current());
+        for (DocumentWriteListener listener : writeListeners) {
+            try {
+                listener.onUpsert(JsonDocument.create(id, content, stored.cas()));
+            } catch (RuntimeException e) {
+                // the write has succeeded, a failing listener must neither fail it nor skip the other listeners
+                LOGGER.error("Write listener failed for upsert of " + id, e);
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * REMOVE the document with a given doc id, from the primary target.
+     * Reads of the current {@link ReadSession} are then pinned to the primary target (read-your-writes).
+     * If the document doesn't exist, the SDK throws a DocumentDoesNotExistException and listeners are not notified.
+     */
+    public JsonDocument remove(String id) {
+        JsonDocument removed = bucket.remove(id);
+        router.pin(ReadSession.current());
+        for (DocumentWriteListener listener : writeListeners) {
+            try {
+                listener.onRemove(id);
+            } catch (RuntimeException e) {
+                LOGGER.error("Write listener failed for remove of " + id, e);
+            }
+        }
+        return removed;
+    }
+
+    public void addWriteListener(DocumentWriteListener listener) {
+        writeListeners.add(listener);
     }
 
     /**
@@ -121,9 +240,19 @@ public class MyCouchbaseService {
         //params.consistency(ScanConsistency.STATEMENT_PLUS);
         ParameterizedN1qlQuery parameterizedQuery = N1qlQuery.parameterized(statement, placeholderValues, params);
 
-        N1qlQueryResult queryResult = bucket.query(parameterizedQuery);
-
-        return queryResult;
+        long start = System.nanoTime();
+        N1qlQueryResult queryResult = null;
+        try {
+            // a replica without the index answers with errors, the router then fails over to another target
+            queryResult = router.read(ReadSession.current(), Operation.N1QL,
+                    routedBucket -> routedBucket.query(parameterizedQuery), N1qlQueryResult::finalSuccess);
+            return queryResult;
+        } finally {
+            // also record queries that timed out or failed, they are often the slowest ones
+            queryStatsService.recordN1ql(statement.toString(), System.nanoTime() - start,
+                    queryResult != null ? queryResult.info() : null,
+                    queryResult == null || !queryResult.finalSuccess());
+        }
 
     }
 
@@ -169,8 +298,16 @@ public class MyCouchbaseService {
         if (offset != null && offset > 0) {
             query.skip(offset);
         }
-        ViewResult result = bucket.query(query);
-        return result;
+        long start = System.nanoTime();
+        ViewResult result = null;
+        try {
+            result = router.read(ReadSession.current(), Operation.VIEW, routedBucket -> routedBucket.query(query),
+                    ViewResult::success);
+            return result;
+        } finally {
+            queryStatsService.recordView(query, System.nanoTime() - start,
+                    result != null ? result.totalRows() : 0, result == null || !result.success());
+        }
     }
     /**
      * Retrieves all the beers using a view query, returning the result asynchronously.
@@ -179,7 +316,75 @@ public class MyCouchbaseService {
      */
     public Observable<AsyncViewResult> findAllBeersAsync() {
         ViewQuery allBeers = ViewQuery.from("beer", "by_name");
-        return bucket.async().query(allBeers);
+        return queryAsync(allBeers);
+    }
+
+    /**
+     * Same as {@link #findAllBeersAsync()}, recording the view query as phase 'view' of the trace.
+     */
+    public Observable<AsyncViewResult> findAllBeersAsync(Trace trace) {
+        return trace.time("view", findAllBeersAsync());
+    }
+
+    /**
+     * Create one ViewQuery per key range of the 'by_name' view, so that the whole view can be scanned by
+     * several range queries in parallel instead of paging through it with skip (skip makes the view engine
+     * walk and throw away every skipped row, so the cost of each page grows with its offset).
+     *
+     * View keys are collated using Unicode collation, where punctuation sorts before digits and digits sort
+     * before letters (lower and upper case of a letter sort next to each other). So the key space is split on
+     * the boundaries "0".."9", "a".."z". The first range has no startKey and the last range has no endKey,
+     * so together the ranges cover every key exactly once (endKey is exclusive).
+     *
+     * @param partitions number of ranges wanted. It is capped to the number of available boundaries + 1.
+     */
+    public static List<ViewQuery> createPartitionedQueriesAllBeers(int partitions) {
+        String boundaries = "0123456789abcdefghijklmnopqrstuvwxyz";
+        int ranges = Math.max(1, Math.min(partitions, boundaries.length() + 1));
+
+        List<ViewQuery> queries = new ArrayList<>(ranges);
+        String startKey = null;
+        for (int i = 1; i <= ranges; i++) {
+            String endKey = i < ranges ? String.valueOf(boundaries.charAt(i * boundaries.length() / ranges)) : null;
+
+            ViewQuery query = ViewQuery.from("beer", "by_name");
+            query.reduce(false);
+            if (startKey != null) {
+                query.startKey(startKey);
+            }
+            if (endKey != null) {
+                query.endKey(endKey);
+                query.inclusiveEnd(false);
+            }
+            queries.add(query);
+            startKey = endKey;
+        }
+        return queries;
+    }
+
+    /**
+     * Asynchronously scan all the beers using key range partitions of the 'by_name' view and fetch their documents.
+     * <p>
+     * Up to 'parallelPartitions' range queries run at the same time and at most 'maxInFlight' document gets are
+     * pipelined per partition. flatMap with maxConcurrent only subscribes to a new get when a previous one is done,
+     * so a slow consumer doesn't make the client read ahead without limit.
+     * <p>
+     * If the view query of a partition returns an error result, the scan fails instead of silently skipping the rows
+     * of that partition.
+     *
+     * @see #createPartitionedQueriesAllBeers(int)
+     */
+    public Observable<JsonDocument> scanAllBeersAsync(int partitions, int parallelPartitions, final int maxInFlight) {
+        return Observable.from(createPartitionedQueriesAllBeers(partitions))
+                .flatMap(query -> queryAsync(query)
+                        .flatMap(asyncViewResult -> asyncViewResult.success()
+                                ? asyncViewResult.rows()
+                                : asyncViewResult.error()
+                                        .defaultIfEmpty(JsonObject.empty())
+                                        .flatMap(error -> Observable.<AsyncViewRow>error(
+                                                new CouchbaseException("View query " + query + " failed - " + error))))
+                        .flatMap(asyncViewRow -> asyncViewRow.document(), maxInFlight),
+                        parallelPartitions);
     }
 
     /**
@@ -190,9 +395,18 @@ public class MyCouchbaseService {
      */
 
     public Observable<JsonArray> searchBeer(Observable<AsyncViewRow> allBeers, final String token) {
+        return searchBeer(allBeers, token, Trace.OFF);
+    }
+
+    /**
+     * Same as {@link #searchBeer(Observable, String)}, recording the document gets as phase 'fanout' of the trace.
+     *
+     * @see #fetchDocuments(Observable, Trace)
+     */
+    public Observable<JsonArray> searchBeer(Observable<AsyncViewRow> allBeers, final String token, Trace trace) {
 
         // Observable is just like Optional
-        Observable<JsonDocument> jsonDocumentObservable = allBeers.flatMap(asyncViewRow -> asyncViewRow.document());
+        Observable<JsonDocument> jsonDocumentObservable = fetchDocuments(allBeers, trace);
 
         Observable<JsonObject> jsonObjectObservable = jsonDocumentObservable.map(jd -> JsonObject.create().put("id", jd.id()).put("name", jd.content().getString("name")).put("detail", jd.content()));
 
@@ -230,7 +444,51 @@ public class MyCouchbaseService {
      * @see #createQueryBeersForBrewery(String)
      */
     public Observable<AsyncViewResult> findBeersForBreweryAsync(String breweryId) {
-        return bucket.async().query(createQueryBeersForBrewery(breweryId));
+        return queryAsync(createQueryBeersForBrewery(breweryId));
+    }
+
+    /**
+     * Query a view asynchronously, recording its time in {@link MyQueryStatsService}.
+     * <p>
+     * The recorded time goes up to the emission of the AsyncViewResult, i.e. until the server has started to answer.
+     * Rows are streamed after that, and the time to consume them depends on the caller.
+     */
+    private Observable<AsyncViewResult> queryAsync(final ViewQuery query) {
+        // the session is only set on the request thread, the Observable may be subscribed on another one
+        String sessionId = ReadSession.current();
+        return Observable.defer(() -> {
+            long start = System.nanoTime();
+            return router.readAsync(sessionId, Operation.VIEW, routedBucket -> routedBucket.query(query),
+                    AsyncViewResult::success)
+                    .doOnNext(asyncViewResult -> queryStatsService.recordView(query, System.nanoTime() - start,
+                            asyncViewResult.totalRows(), !asyncViewResult.success()))
+                    .doOnError(throwable -> queryStatsService.recordView(query, System.nanoTime() - start, 0, true));
+        });
+    }
+
+    /**
+     * Same as {@link #findBeersForBreweryAsync(String)}, recording the view query as phase 'view' of the trace.
+     */
+    public Observable<AsyncViewResult> findBeersForBreweryAsync(String breweryId, Trace trace) {
+        return trace.time("view", findBeersForBreweryAsync(breweryId));
+    }
+
+    /**
+     * Fetch the documents of view rows (one async get per row, all running at the same time).
+     * <p>
+     * The whole fan-out is recorded as phase 'fanout' of the trace, and each get as a child, so that the trace tells
+     * how many gets there were and how long the slowest one took.
+     * The phase starts when 'rows' is subscribed, so call this with the rows of a view result that has already arrived
+     * (e.g. inside a flatMap on the AsyncViewResult), otherwise the view query is counted in the fan-out too.
+     */
+    public Observable<JsonDocument> fetchDocuments(Observable<AsyncViewRow> rows, final Trace trace) {
+        if (!trace.isSampled()) {
+            return rows.flatMap(asyncViewRow -> asyncViewRow.document());
+        }
+        return trace.time("fanout", rows.flatMap(asyncViewRow -> Observable.defer(() -> {
+            long childStart = trace.start();
+            return asyncViewRow.document().doOnTerminate(() -> trace.child(childStart));
+        })));
     }
 
     /**
@@ -244,10 +502,21 @@ public class MyCouchbaseService {
      */
     public static Observable<JsonDocument> concatBeerInfoToBrewery(Observable<JsonDocument> brewery,
                                                                    Observable<List<JsonDocument>> beers) {
+        return concatBeerInfoToBrewery(brewery, beers, Trace.OFF);
+    }
+
+    /**
+     * Same as {@link #concatBeerInfoToBrewery(Observable, Observable)}, recording the concatenation as phase 'concat'
+     * of the trace.
+     */
+    public static Observable<JsonDocument> concatBeerInfoToBrewery(Observable<JsonDocument> brewery,
+                                                                   Observable<List<JsonDocument>> beers,
+                                                                   final Trace trace) {
         return Observable.zip(brewery, beers,
                 new Func2<JsonDocument, List<JsonDocument>, JsonDocument>() {
                     @Override
                     public JsonDocument call(JsonDocument breweryDoc, List<JsonDocument> beersDoc) {
+                        long concatStart = trace.start();
                         JsonArray beers = JsonArray.create();
                         for (JsonDocument beerDoc : beersDoc) {
                             JsonObject beer = JsonObject.create()
@@ -256,6 +525,7 @@ public class MyCouchbaseService {
                             beers.add(beer);
                         }
                         breweryDoc.content().put("beers", beers);
+                        trace.phase("concat", concatStart);
                         return breweryDoc;
                     }
                 });
@@ -0,0 +1,225 @@
+package own.service;
+
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import rx.subjects.PublishSubject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports all the beers of the bucket as gzip compressed NDJSON (one JSON object per line).
+ * <p>
+ * Instead of paging through the 'by_name' view with skip/limit (where every page re-reads all the skipped rows and then
+ * gets each document one by one), the view is scanned by key range partitions and documents are fetched with pipelined
+ * async gets. See {@link MyCouchbaseService#scanAllBeersAsync(int, int, int)}.
+ * <p>
+ * Documents are handed over from the async pipeline to the writing thread through a blocking iterator. It requests
+ * documents from the pipeline in small batches (backpressure), so only a bounded number of documents is buffered in
+ * memory, however big the bucket is.
+ */
+@Service
+public class MyExportService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MyExportService.class);
+
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    private final MyCouchbaseService couchbaseService;
+
+    @Value("${export.dir:exports}")
+    private String exportDir;
+
+    @Value("${export.partitions:8}")
+    private int partitions;
+
+    @Value("${export.parallelPartitions:4}")
+    private int parallelPartitions;
+
+    @Value("${export.maxInFlight:64}")
+    private int maxInFlight;
+
+    @Autowired
+    public MyExportService(MyCouchbaseService couchbaseService) {
+        this.couchbaseService = couchbaseService;
+    }
+
+    /**
+     * Stream all the beers to the given output stream as gzip NDJSON. Each line looks like {"id":"...","doc":{...}}.
+     * The given stream is not closed, but the gzip trailer is written to it.
+     */
+    public ExportStats exportAllBeers(OutputStream out) throws IOException {
+        long start = System.nanoTime();
+
+        CountingOutputStream compressedOut = new CountingOutputStream(out);
+
+        long rows = 0;
+        long rawBytes = 0;
+
+        // the blocking iterator can't be unsubscribed, so if writing fails (e.g. the client went away) the scan is
+        // cancelled through this subject. Otherwise the view queries and in-flight gets would stay subscribed.
+        PublishSubject<Object> cancel = PublishSubject.create();
+        Iterator<JsonDocument> docs = couchbaseService.scanAllBeersAsync(partitions, parallelPartitions, maxInFlight)
+                .takeUntil(cancel)
+                .toBlocking()
+                .getIterator();
+        // closing the gzip stream releases the native memory of its Deflater. It doesn't close 'out' (see CountingOutputStream)
+        try (GZIPOutputStream gzipOut = new GZIPOutputStream(compressedOut, GZIP_BUFFER_SIZE)) {
+            while (docs.hasNext()) {
+                JsonDocument doc = docs.next();
+                byte[] line = JsonObject.create().put("id", doc.id()).put("doc", doc.content()).toString()
+                        .getBytes(StandardCharsets.UTF_8);
+                gzipOut.write(line);
+                gzipOut.write('\n');
+                rows++;
+                rawBytes += line.length + 1;
+            }
+            gzipOut.finish();
+            gzipOut.flush();
+        } finally {
+            cancel.onNext(Boolean.TRUE);
+        }
+
+        ExportStats stats = new ExportStats(rows, rawBytes, compressedOut.getCount(), System.nanoTime() - start);
+        LOGGER.info("Exported beers - " + stats.toJson());
+        return stats;
+    }
+
+    /**
+     * Export all the beers to a file under the configured export directory ('export.dir').
+     * <p>
+     * The export is written to a temporary file, which is renamed to 'fileName' only once the export is complete.
+     * If the export fails, the temporary file is deleted, so a file with the requested name is always a full export.
+     *
+     * @param fileName plain file name, it must not contain a path.
+     */
+    public ExportStats exportAllBeersToFile(String fileName) throws IOException {
+        if (fileName == null || fileName.isEmpty() || !fileName.equals(new File(fileName).getName())
+                || fileName.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid export file name " + fileName);
+        }
+        File dir = new File(exportDir);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create export directory " + dir.getAbsolutePath());
+        }
+        File file = new File(dir, fileName);
+        File partFile = File.createTempFile(fileName + ".tmp-", ".part", dir);
+        boolean completed = false;
+        try {
+            ExportStats stats;
+            try (OutputStream out = new FileOutputStream(partFile)) {
+                stats = exportAllBeers(out);
+            }
+            Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            completed = true;
+            LOGGER.info("Beers exported to " + file.getAbsolutePath());
+            return stats;
+        } finally {
+            if (!completed && !partFile.delete()) {
+                LOGGER.warn("Unable to delete incomplete export " + partFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Throughput of one export. Bytes are reported both before (raw NDJSON) and after compression.
+     */
+    public static class ExportStats {
+        private final long rows;
+        private final long rawBytes;
+        private final long compressedBytes;
+        private final long elapsedNanos;
+
+        public ExportStats(long rows, long rawBytes, long compressedBytes, long elapsedNanos) {
+            this.rows = rows;
+            this.rawBytes = rawBytes;
+            this.compressedBytes = compressedBytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getRawBytes() {
+            return rawBytes;
+        }
+
+        public long getCompressedBytes() {
+            return compressedBytes;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getRowsPerSec() {
+            return perSec(rows);
+        }
+
+        public double getBytesPerSec() {
+            return perSec(compressedBytes);
+        }
+
+        private double perSec(long count) {
+            return elapsedNanos > 0 ? count * 1e9 / elapsedNanos : 0;
+        }
+
+        public JsonObject toJson() {
+            return JsonObject.create()
+                    .put("rows", rows)
+                    .put("rawBytes", rawBytes)
+                    .put("compressedBytes", compressedBytes)
+                    .put("elapsedMillis", elapsedNanos / 1000000)
+                    .put("rowsPerSec", Math.round(getRowsPerSec()))
+                    .put("bytesPerSec", Math.round(getBytesPerSec()))
+                    .put("rawBytesPerSec", Math.round(perSec(rawBytes)));
+        }
+    }
+
+    /**
+     * Counts the bytes written to the underlying stream, i.e. the compressed size.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        // don't close the wrapped stream, it belongs to the caller
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
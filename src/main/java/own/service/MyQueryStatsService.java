@@ -0,0 +1,154 @@
+package own.service;
+
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.query.N1qlMetrics;
+import com.couchbase.client.java.view.ViewQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Timings of every N1QL and view query run by {@link MyCouchbaseService}.
+ * <p>
+ * Queries are grouped by shape: the statement with literals replaced by '?' (N1QL), or the design document, view and
+ * parameter names without their values (views), so that the same query with different values counts as one.
+ * <ul>
+ * <li>Queries slower than 'querylog.slowThresholdMillis' (client side) are logged with their shape and, for N1QL,
+ * the server side metrics (executionTime, resultCount, resultSize).</li>
+ * <li>The most expensive shapes (total client time) are kept in a {@link QueryCostSketch}.</li>
+ * </ul>
+ * Failed queries (errors in the result, timeouts, exceptions) are recorded too, and counted as failures of their shape.
+ * Views don't report server side timings, so for them only client side time is recorded.
+ */
+@Service
+public class MyQueryStatsService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MyQueryStatsService.class);
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^'\\\\]|\\\\.|'')*'|\"(?:[^\"\\\\]|\\\\.|\"\")*\"");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![$\\w.])\\d+(?:\\.\\d+)?\\b");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern VIEW_PARAM_VALUE = Pattern.compile("=[^&]*");
+    // N1QL durations are Go durations, e.g. "12.3456ms", "1.2s", "1m2.5s", "850.2us"
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ns|us|\\u00b5s|ms|s|m|h)");
+
+    private final long slowThresholdMicros;
+    private final int topN;
+    private final QueryCostSketch sketch;
+
+    @Autowired
+    public MyQueryStatsService(@Value("${querylog.slowThresholdMillis:500}") long slowThresholdMillis,
+                               @Value("${querylog.topN:20}") int topN) {
+        this.slowThresholdMicros = slowThresholdMillis * 1000;
+        this.topN = topN;
+        // more candidates than reported, so that shapes close to the top-N boundary aren't evicted too early
+        this.sketch = new QueryCostSketch(topN * 4);
+    }
+
+    /**
+     * @param clientNanos time from sending the query to getting its whole result.
+     * @param metrics     server side metrics, null if the query failed before the server reported them.
+     * @param failed      true if the query threw or its result reports errors.
+     */
+    public void recordN1ql(String statement, long clientNanos, N1qlMetrics metrics, boolean failed) {
+        String shape = "N1QL " + normalizeStatement(statement);
+        long clientMicros = clientNanos / 1000;
+        long serverMicros = metrics != null ? parseDurationMicros(metrics.executionTime()) : 0;
+        sketch.add(shape, clientMicros, serverMicros, failed);
+
+        if (clientMicros >= slowThresholdMicros) {
+            if (metrics != null) {
+                LOGGER.warn(slowPrefix(failed) + clientMicros / 1000 + " ms client, executionTime " + metrics.executionTime()
+                        + ", resultCount " + metrics.resultCount() + ", resultSize " + metrics.resultSize() + "): " + shape);
+            } else {
+                LOGGER.warn(slowPrefix(failed) + clientMicros / 1000 + " ms client): " + shape);
+            }
+        }
+    }
+
+    /**
+     * @param clientNanos time from sending the query to getting its result (see callers for what the result covers).
+     * @param totalRows   number of rows in the view, as reported by the server. 0 if the query failed.
+     * @param failed      true if the query threw or its result reports an error.
+     */
+    public void recordView(ViewQuery query, long clientNanos, int totalRows, boolean failed) {
+        String shape = "VIEW " + normalizeView(query);
+        long clientMicros = clientNanos / 1000;
+        sketch.add(shape, clientMicros, 0, failed);
+
+        if (clientMicros >= slowThresholdMicros) {
+            LOGGER.warn(slowPrefix(failed) + clientMicros / 1000 + " ms client, totalRows " + totalRows + "): " + shape);
+        }
+    }
+
+    private static String slowPrefix(boolean failed) {
+        return failed ? "Slow failed query (" : "Slow query (";
+    }
+
+    /**
+     * @return the most expensive query shapes, by total client time. All values are estimates (see {@link QueryCostSketch}).
+     */
+    public JsonArray topQueries() {
+        JsonArray result = JsonArray.create();
+        for (QueryCostSketch.Candidate candidate : sketch.top(topN)) {
+            result.add(JsonObject.create()
+                    .put("query", candidate.shape)
+                    .put("count", candidate.count)
+                    .put("failures", candidate.failures)
+                    .put("totalMillis", candidate.cost / 1000.0)
+                    .put("avgMillis", candidate.cost / 1000.0 / candidate.count)
+                    .put("maxMillis", candidate.maxMicros / 1000.0)
+                    .put("totalServerMillis", candidate.serverCost / 1000.0));
+        }
+        return result;
+    }
+
+    static String normalizeStatement(String statement) {
+        String normalized = STRING_LITERAL.matcher(statement).replaceAll("?");
+        normalized = NUMBER_LITERAL.matcher(normalized).replaceAll("?");
+        return WHITESPACE.matcher(normalized).replaceAll(" ").trim();
+    }
+
+    static String normalizeView(ViewQuery query) {
+        return query.getDesign() + "/" + query.getView() + "?" + VIEW_PARAM_VALUE.matcher(query.toString()).replaceAll("=?");
+    }
+
+    static long parseDurationMicros(String duration) {
+        if (duration == null) {
+            return 0;
+        }
+        double micros = 0;
+        Matcher matcher = DURATION_PART.matcher(duration);
+        while (matcher.find()) {
+            double value = Double.parseDouble(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "ns":
+                    micros += value / 1000;
+                    break;
+                case "us":
+                case "\u00b5s":
+                    micros += value;
+                    break;
+                case "ms":
+                    micros += value * 1000;
+                    break;
+                case "s":
+                    micros += value * 1000000;
+                    break;
+                case "m":
+                    micros += value * 60000000;
+                    break;
+                default:
+                    micros += value * 3600000000L;
+                    break;
+            }
+        }
+        return (long) micros;
+    }
+}
@@ -0,0 +1,66 @@
+package own.service;
+
+import com.couchbase.client.java.document.json.JsonArray;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Samples requests for tracing and keeps the last finished traces in a fixed size ring buffer.
+ * <p>
+ * 'tracing.sampleRate' is the fraction of requests that get traced (0 turns tracing off, 1 traces every request).
+ * When the ring buffer is full, the oldest trace is overwritten.
+ */
+@Service
+public class MyTraceService {
+
+    private final double sampleRate;
+    private final AtomicReferenceArray<Trace> traces;
+    private final AtomicLong finished = new AtomicLong();
+
+    @Autowired
+    public MyTraceService(@Value("${tracing.sampleRate:0}") double sampleRate,
+                          @Value("${tracing.bufferSize:256}") int bufferSize) {
+        this.sampleRate = sampleRate;
+        this.traces = new AtomicReferenceArray<>(Math.max(1, bufferSize));
+    }
+
+    /**
+     * The trace name is 'operation' followed by 'argument', e.g. "getBrewery 21st_amendment_brewery_cafe". It is only
+     * built for sampled requests, so a request that isn't sampled allocates nothing here.
+     *
+     * @return a new trace if this request is sampled, {@link Trace#OFF} otherwise.
+     */
+    public Trace start(String operation, String argument) {
+        if (sampleRate <= 0 || (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return Trace.OFF;
+        }
+        return new Trace(operation + " " + argument);
+    }
+
+    public void finish(Trace trace) {
+        if (trace.isSampled()) {
+            trace.finish();
+            traces.set((int) (finished.getAndIncrement() % traces.length()), trace);
+        }
+    }
+
+    /**
+     * @return the traces in the ring buffer, most recent first.
+     */
+    public JsonArray recentTraces() {
+        JsonArray result = JsonArray.create();
+        long last = finished.get();
+        for (long i = last - 1; i >= 0 && i >= last - traces.length(); i--) {
+            Trace trace = traces.get((int) (i % traces.length()));
+            if (trace != null) {
+                result.add(trace.toJson());
+            }
+        }
+        return result;
+    }
+}
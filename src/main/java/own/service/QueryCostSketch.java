@@ -0,0 +1,123 @@
+package own.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Approximate top-N of the most expensive query shapes, in bounded memory and without locks.
+ * <p>
+ * Total cost, server time, number of executions and number of failures per shape are counted in count-min sketches (a few rows of
+ * AtomicLongArray counters, each shape hashed to one counter per row, the estimate being the smallest of them).
+ * Estimates can only be over-counted, by colliding shapes, never under-counted.
+ * <p>
+ * Next to the sketches, a fixed number of candidate slots keep the shapes with the highest estimated cost. A slot is only
+ * replaced with compareAndSet. When all slots are taken, a new shape replaces the cheapest candidate only if it is more
+ * expensive. When a compareAndSet loses a race, the update of the candidate is dropped (the sketch counters are still
+ * up to date, and the next execution of that shape refreshes its candidate).
+ */
+final class QueryCostSketch {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH_BITS = 10;
+    private static final int WIDTH = 1 << WIDTH_BITS;
+    private static final int[] MULTIPLIERS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final AtomicLongArray costs = new AtomicLongArray(DEPTH * WIDTH);
+    private final AtomicLongArray serverCosts = new AtomicLongArray(DEPTH * WIDTH);
+    private final AtomicLongArray counts = new AtomicLongArray(DEPTH * WIDTH);
+    private final AtomicLongArray failureCounts = new AtomicLongArray(DEPTH * WIDTH);
+    private final AtomicReferenceArray<Candidate> candidates;
+
+    QueryCostSketch(int capacity) {
+        this.candidates = new AtomicReferenceArray<>(Math.max(1, capacity));
+    }
+
+    /**
+     * @param costMicros   client side time of one execution.
+     * @param serverMicros server side time of one execution, 0 if the server doesn't report it.
+     * @param failed       true if this execution failed.
+     */
+    void add(String shape, long costMicros, long serverMicros, boolean failed) {
+        int hash = shape.hashCode();
+        long cost = Long.MAX_VALUE;
+        long serverCost = Long.MAX_VALUE;
+        long count = Long.MAX_VALUE;
+        long failures = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = index(hash, row);
+            cost = Math.min(cost, costs.addAndGet(index, costMicros));
+            serverCost = Math.min(serverCost, serverCosts.addAndGet(index, serverMicros));
+            count = Math.min(count, counts.incrementAndGet(index));
+            failures = Math.min(failures, failed ? failureCounts.incrementAndGet(index) : failureCounts.get(index));
+        }
+        offer(new Candidate(shape, cost, serverCost, count, failures, costMicros));
+    }
+
+    private void offer(Candidate offered) {
+        int emptySlot = -1;
+        int cheapestSlot = -1;
+        Candidate cheapest = null;
+        for (int slot = 0; slot < candidates.length(); slot++) {
+            Candidate candidate = candidates.get(slot);
+            if (candidate == null) {
+                if (emptySlot < 0) {
+                    emptySlot = slot;
+                }
+            } else if (candidate.shape.equals(offered.shape)) {
+                candidates.compareAndSet(slot, candidate, new Candidate(offered.shape, offered.cost, offered.serverCost,
+                        offered.count, offered.failures, Math.max(candidate.maxMicros, offered.maxMicros)));
+                return;
+            } else if (cheapest == null || candidate.cost < cheapest.cost) {
+                cheapest = candidate;
+                cheapestSlot = slot;
+            }
+        }
+        if (emptySlot >= 0) {
+            candidates.compareAndSet(emptySlot, null, offered);
+        } else if (cheapest != null && offered.cost > cheapest.cost) {
+            candidates.compareAndSet(cheapestSlot, cheapest, offered);
+        }
+    }
+
+    /**
+     * @return up to n candidates, most expensive first.
+     */
+    List<Candidate> top(int n) {
+        List<Candidate> snapshot = new ArrayList<>(candidates.length());
+        for (int slot = 0; slot < candidates.length(); slot++) {
+            Candidate candidate = candidates.get(slot);
+            if (candidate != null) {
+                snapshot.add(candidate);
+            }
+        }
+        Collections.sort(snapshot, (a, b) -> Long.compare(b.cost, a.cost));
+        return snapshot.subList(0, Math.min(n, snapshot.size()));
+    }
+
+    private static int index(int hash, int row) {
+        // multiplicative hashing with one odd multiplier per row, the high bits of the product depend on all the bits of the hash
+        int h = (hash ^ (hash >>> 16)) * MULTIPLIERS[row];
+        return row * WIDTH + (h >>> (Integer.SIZE - WIDTH_BITS));
+    }
+
+    static final class Candidate {
+        final String shape;
+        final long cost;
+        final long serverCost;
+        final long count;
+        final long failures;
+        final long maxMicros;
+
+        private Candidate(String shape, long cost, long serverCost, long count, long failures, long maxMicros) {
+            this.shape = shape;
+            this.cost = cost;
+            this.serverCost = serverCost;
+            this.count = count;
+            this.failures = failures;
+            this.maxMicros = maxMicros;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package own.service;
+
+/**
+ * Session id of the request being handled on the current thread, used for read-your-writes routing
+ * (see {@link ClusterRouter#pin(String)}).
+ * <p>
+ * It is set for each web request from the X-Session-Id header. Async reads capture it when they are created, on the
+ * request thread, so it doesn't need to be visible on the SDK threads that run the rest of the pipeline.
+ */
+public final class ReadSession {
+
+    private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+
+    private ReadSession() {
+    }
+
+    /**
+     * @return session id of the current request, or null if there is none (e.g. background loads).
+     */
+    public static String current() {
+        return CURRENT.get();
+    }
+
+    public static void set(String sessionId) {
+        CURRENT.set(sessionId);
+    }
+
+    public static void clear() {
+        CURRENT.remove();
+    }
+}
@@ -0,0 +1,157 @@
+package own.service;
+
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import rx.Observable;
+import rx.functions.Action0;
+
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Phases (spans) of one request, e.g. the view query, the fan-out of document gets, serialization.
+ * <p>
+ * Phases are recorded from whichever thread runs that part of the pipeline (async callbacks run on SDK threads),
+ * so a trace is passed along explicitly instead of being kept in a ThreadLocal.
+ * <p>
+ * A request that is not sampled gets {@link #OFF}. All its methods return right away, and callers check
+ * {@link #isSampled()} before adding any timing operators to an Observable, so tracing costs nothing when it's off.
+ */
+public final class Trace {
+
+    public static final Trace OFF = new Trace(null, false);
+
+    private final String name;
+    private final boolean sampled;
+    private final long startMillis;
+    private final long startNanos;
+    private final Queue<Phase> phases = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger fanOutWidth = new AtomicInteger();
+    private final AtomicLong slowestChildNanos = new AtomicLong();
+    private volatile long durationNanos;
+
+    Trace(String name) {
+        this(name, true);
+    }
+
+    private Trace(String name, boolean sampled) {
+        this.name = name;
+        this.sampled = sampled;
+        this.startMillis = sampled ? System.currentTimeMillis() : 0;
+        this.startNanos = sampled ? System.nanoTime() : 0;
+    }
+
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    /**
+     * @return start time to pass to {@link #phase(String, long)} or {@link #child(long)} later.
+     */
+    public long start() {
+        return sampled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record a phase that started at 'phaseStartNanos' (see {@link #start()}) and ends now.
+     */
+    public void phase(String phaseName, long phaseStartNanos) {
+        if (sampled) {
+            long now = System.nanoTime();
+            phases.add(new Phase(phaseName, phaseStartNanos - startNanos, now - phaseStartNanos));
+        }
+    }
+
+    /**
+     * Record one child operation of a fan-out (e.g. one document get) that started at 'childStartNanos' and ends now.
+     */
+    public void child(long childStartNanos) {
+        if (sampled) {
+            long elapsed = System.nanoTime() - childStartNanos;
+            fanOutWidth.incrementAndGet();
+            long slowest;
+            while (elapsed > (slowest = slowestChildNanos.get()) && !slowestChildNanos.compareAndSet(slowest, elapsed)) {
+                // retry, another child has just updated the slowest one
+            }
+        }
+    }
+
+    /**
+     * Record the time from the subscription to the termination of 'source' as a phase.
+     * The phase is also recorded if 'source' is unsubscribed before it terminates (e.g. a zip that completes early
+     * because its other source is empty or failed), but only once.
+     * If this trace is not sampled, 'source' is returned as is.
+     */
+    public <T> Observable<T> time(String phaseName, Observable<T> source) {
+        if (!sampled) {
+            return source;
+        }
+        return Observable.defer(() -> {
+            long phaseStart = start();
+            AtomicBoolean recorded = new AtomicBoolean();
+            Action0 record = () -> {
+                if (recorded.compareAndSet(false, true)) {
+                    phase(phaseName, phaseStart);
+                }
+            };
+            return source.doOnTerminate(record).doOnUnsubscribe(record);
+        });
+    }
+
+    void finish() {
+        durationNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return value of the Server-Timing response header, e.g. view;dur=12.1, fanout;dur=30.4;desc="width=12 slowest=9.8ms"
+     */
+    public String serverTiming() {
+        StringBuilder header = new StringBuilder();
+        for (Phase phase : phases) {
+            header.append(phase.name).append(";dur=").append(millis(phase.durationNanos));
+            if ("fanout".equals(phase.name)) {
+                header.append(";desc=\"width=").append(fanOutWidth.get())
+                        .append(" slowest=").append(millis(slowestChildNanos.get())).append("ms\"");
+            }
+            header.append(", ");
+        }
+        return header.append("total;dur=").append(millis(System.nanoTime() - startNanos)).toString();
+    }
+
+    public JsonObject toJson() {
+        JsonArray phasesJson = JsonArray.create();
+        for (Phase phase : phases) {
+            phasesJson.add(JsonObject.create()
+                    .put("name", phase.name)
+                    .put("offsetMillis", phase.offsetNanos / 1e6)
+                    .put("durationMillis", phase.durationNanos / 1e6));
+        }
+        return JsonObject.create()
+                .put("name", name)
+                .put("start", startMillis)
+                .put("durationMillis", durationNanos / 1e6)
+                .put("phases", phasesJson)
+                .put("fanOutWidth", fanOutWidth.get())
+                .put("slowestChildMillis", slowestChildNanos.get() / 1e6);
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+    }
+
+    private static final class Phase {
+        private final String name;
+        private final long offsetNanos;
+        private final long durationNanos;
+
+        private Phase(String name, long offsetNanos, long durationNanos) {
+            this.name = name;
+            this.offsetNanos = offsetNanos;
+            this.durationNanos = durationNanos;
+        }
+    }
+}
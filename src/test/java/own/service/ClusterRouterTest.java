@@ -0,0 +1,235 @@
+package own.service;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.view.AsyncViewResult;
+import com.couchbase.client.java.view.ViewQuery;
+import com.couchbase.client.java.view.ViewResult;
+import org.junit.Before;
+import org.junit.Test;
+import own.service.ClusterRouter.Operation;
+import own.service.ClusterRouter.Target;
+import rx.Observable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the router against two stub buckets, with a clock moved by hand.
+ */
+public class ClusterRouterTest {
+
+    private static final double ALPHA = 0.2;
+    private static final long RETRY_AFTER_MILLIS = 10000;
+    private static final long READ_YOUR_WRITES_MILLIS = 1000;
+    private static final long PROBE_INTERVAL_MILLIS = 5000;
+
+    private final AtomicLong clock = new AtomicLong(1);
+
+    private Bucket bucketA;
+    private Bucket bucketB;
+    private AsyncBucket asyncBucketA;
+    private AsyncBucket asyncBucketB;
+    private Target a;
+    private Target b;
+
+    @Before
+    public void setUp() {
+        bucketA = mock(Bucket.class);
+        bucketB = mock(Bucket.class);
+        asyncBucketA = mock(AsyncBucket.class);
+        asyncBucketB = mock(AsyncBucket.class);
+        when(bucketA.async()).thenReturn(asyncBucketA);
+        when(bucketB.async()).thenReturn(asyncBucketB);
+        a = new Target("a", bucketA);
+        b = new Target("b", bucketB);
+        // a is the fastest one for gets, b for views
+        a.success(Operation.GET, 1000000, ALPHA, clock.get());
+        b.success(Operation.GET, 5000000, ALPHA, clock.get());
+        a.success(Operation.VIEW, 90000000, ALPHA, clock.get());
+        b.success(Operation.VIEW, 30000000, ALPHA, clock.get());
+    }
+
+    private ClusterRouter router(Target primary, int failureThreshold) {
+        return new ClusterRouter(Arrays.asList(a, b), primary, ALPHA, failureThreshold, RETRY_AFTER_MILLIS,
+                READ_YOUR_WRITES_MILLIS, PROBE_INTERVAL_MILLIS, clock::get);
+    }
+
+    @Test
+    public void readsGoToTheFastestTargetOfTheirKind() {
+        ClusterRouter router = router(a, 3);
+
+        assertEquals(Arrays.asList(a, b), router.candidates(null, Operation.GET));
+        assertEquals(Arrays.asList(b, a), router.candidates(null, Operation.VIEW));
+    }
+
+    @Test
+    public void readFailsOverWhenTheFastestTargetThrows() {
+        JsonDocument doc = JsonDocument.create("beer");
+        when(bucketA.get("beer")).thenThrow(new RuntimeException("timeout"));
+        when(bucketB.get("beer")).thenReturn(doc);
+        ClusterRouter router = router(a, 1);
+
+        assertSame(doc, router.read(null, Operation.GET, bucket -> bucket.get("beer")));
+        assertFalse(a.isHealthy(Operation.GET));
+    }
+
+    @Test
+    public void errorResultFailsOverAndCountsAsFailure() {
+        ViewQuery query = ViewQuery.from("beer", "by_name");
+        ViewResult errorResult = viewResult(false);
+        ViewResult result = viewResult(true);
+        when(bucketB.query(query)).thenReturn(errorResult);
+        when(bucketA.query(query)).thenReturn(result);
+        ClusterRouter router = router(a, 1);
+
+        assertSame(result, router.read(null, Operation.VIEW, bucket -> bucket.query(query), ViewResult::success));
+        assertFalse(b.isHealthy(Operation.VIEW));
+        assertEquals(Collections.singletonList(a), router.candidates(null, Operation.VIEW));
+    }
+
+    @Test
+    public void lastErrorResultIsReturnedWhenEveryTargetFails() {
+        ViewQuery query = ViewQuery.from("beer", "by_name");
+        ViewResult errorResultA = viewResult(false);
+        when(bucketB.query(query)).thenReturn(viewResult(false));
+        when(bucketA.query(query)).thenReturn(errorResultA);
+        ClusterRouter router = router(a, 3);
+
+        assertSame(errorResultA, router.read(null, Operation.VIEW, bucket -> bucket.query(query), ViewResult::success));
+    }
+
+    @Test
+    public void healthIsTrackedPerKind() {
+        ClusterRouter router = router(a, 2);
+
+        b.failure(Operation.VIEW, 2, RETRY_AFTER_MILLIS, clock.get());
+        // successful gets don't reset the view failures
+        b.success(Operation.GET, 5000000, ALPHA, clock.get());
+        b.failure(Operation.VIEW, 2, RETRY_AFTER_MILLIS, clock.get());
+
+        assertFalse(b.isHealthy(Operation.VIEW));
+        assertTrue(b.isHealthy(Operation.GET));
+        assertEquals(Collections.singletonList(a), router.candidates(null, Operation.VIEW));
+        assertEquals(Arrays.asList(a, b), router.candidates(null, Operation.GET));
+    }
+
+    @Test
+    public void targetWithoutMeasurementGoesAfterMeasuredOnes() {
+        Target c = new Target("c", mock(Bucket.class));
+        ClusterRouter router = new ClusterRouter(Arrays.asList(c, a, b), c, ALPHA, 3, RETRY_AFTER_MILLIS,
+                READ_YOUR_WRITES_MILLIS, PROBE_INTERVAL_MILLIS, clock::get);
+
+        assertEquals(Arrays.asList(b, a, c), router.candidates(null, Operation.VIEW));
+    }
+
+    @Test
+    public void downTargetGetsASingleProbeReadAfterRetryAfter() {
+        ClusterRouter router = router(a, 2);
+        a.failure(Operation.GET, 2, RETRY_AFTER_MILLIS, clock.get());
+        assertTrue(a.isHealthy(Operation.GET));
+        a.failure(Operation.GET, 2, RETRY_AFTER_MILLIS, clock.get());
+        assertFalse(a.isHealthy(Operation.GET));
+
+        assertEquals(Collections.singletonList(b), router.candidates(null, Operation.GET));
+
+        clock.addAndGet(RETRY_AFTER_MILLIS);
+        // the probe goes to a first, with b to fail over to, and only one read gets it
+        assertEquals(Arrays.asList(a, b), router.candidates(null, Operation.GET));
+        assertEquals(Collections.singletonList(b), router.candidates(null, Operation.GET));
+
+        a.success(Operation.GET, 1000000, ALPHA, clock.get());
+        assertTrue(a.isHealthy(Operation.GET));
+        assertEquals(2, router.candidates(null, Operation.GET).size());
+    }
+
+    @Test
+    public void allTargetsAreTriedWhenAllAreDown() {
+        ClusterRouter router = router(a, 1);
+        a.failure(Operation.GET, 1, RETRY_AFTER_MILLIS, clock.get());
+        b.failure(Operation.GET, 1, RETRY_AFTER_MILLIS, clock.get());
+
+        assertEquals(2, router.candidates(null, Operation.GET).size());
+    }
+
+    @Test
+    public void slowerTargetIsProbedOncePerInterval() {
+        ClusterRouter router = router(a, 3);
+
+        clock.addAndGet(PROBE_INTERVAL_MILLIS);
+        assertEquals(Arrays.asList(b, a), router.candidates(null, Operation.GET));
+        assertEquals(Arrays.asList(a, b), router.candidates(null, Operation.GET));
+        // probes are per kind, a is the slower one for views
+        assertEquals(Arrays.asList(a, b), router.candidates(null, Operation.VIEW));
+    }
+
+    @Test
+    public void pinnedSessionReadsFromThePrimaryUntilItExpires() {
+        ClusterRouter router = router(b, 3);
+        router.pin("session");
+
+        assertEquals(Collections.singletonList(b), router.candidates("session", Operation.GET));
+        assertEquals(Arrays.asList(a, b), router.candidates("other", Operation.GET));
+
+        clock.addAndGet(READ_YOUR_WRITES_MILLIS);
+        assertEquals(Arrays.asList(a, b), router.candidates("session", Operation.GET));
+    }
+
+    @Test
+    public void oldestPinIsDroppedAboveTheCap() {
+        ClusterRouter router = router(b, 3);
+        for (int i = 0; i <= ClusterRouter.MAX_PINNED_SESSIONS; i++) {
+            router.pin("session" + i);
+        }
+
+        assertEquals(Arrays.asList(a, b), router.candidates("session0", Operation.GET));
+        assertEquals(Collections.singletonList(b), router.candidates("session1", Operation.GET));
+    }
+
+    @Test
+    public void readAsyncFailsOverWhenTheObservableFails() {
+        JsonDocument doc = JsonDocument.create("beer");
+        when(asyncBucketA.get("beer")).thenReturn(Observable.<JsonDocument>error(new RuntimeException("timeout")));
+        when(asyncBucketB.get("beer")).thenReturn(Observable.just(doc));
+        ClusterRouter router = router(a, 1);
+
+        JsonDocument result = router.readAsync(null, Operation.GET, bucket -> bucket.get("beer")).toBlocking().single();
+
+        assertSame(doc, result);
+        assertFalse(a.isHealthy(Operation.GET));
+    }
+
+    @Test
+    public void readAsyncFailsOverOnErrorResult() {
+        ViewQuery query = ViewQuery.from("beer", "by_name");
+        AsyncViewResult errorResult = mock(AsyncViewResult.class);
+        AsyncViewResult result = mock(AsyncViewResult.class);
+        when(errorResult.success()).thenReturn(false);
+        when(result.success()).thenReturn(true);
+        when(asyncBucketB.query(query)).thenReturn(Observable.just(errorResult));
+        when(asyncBucketA.query(query)).thenReturn(Observable.just(result));
+        ClusterRouter router = router(a, 1);
+
+        AsyncViewResult viewResult = router.readAsync(null, Operation.VIEW, bucket -> bucket.query(query),
+                AsyncViewResult::success).toBlocking().single();
+
+        assertSame(result, viewResult);
+        assertFalse(b.isHealthy(Operation.VIEW));
+        assertTrue(b.isHealthy(Operation.GET));
+    }
+
+    private static ViewResult viewResult(boolean success) {
+        ViewResult result = mock(ViewResult.class);
+        when(result.success()).thenReturn(success);
+        return result;
+    }
+}